@@ -0,0 +1,242 @@
+package com.betdbest;
+
+import java.lang.ref.WeakReference;
+import java.time.DayOfWeek;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import com.betdbest.WarehouseTest.CarrierPricing;
+import com.betdbest.WarehouseTest.CarrierTime;
+import com.betdbest.WarehouseTest.DepartureTime;
+import com.betdbest.WarehouseTest.Item;
+import com.betdbest.WarehouseTest.Order;
+import com.betdbest.WarehouseTest.Reservation;
+import com.betdbest.WarehouseTest.ReservationWheel;
+import com.betdbest.WarehouseTest.ShipmentsManager;
+import com.betdbest.WarehouseTest.ShipmentsManager.NoSuitableWarehouseException;
+import com.betdbest.WarehouseTest.ShippingHour;
+import com.betdbest.WarehouseTest.Stock;
+import com.betdbest.WarehouseTest.Warehouse;
+
+/**
+ * Checks reserve, confirm, release and expiry of ShipmentsManager on a fake clock, then the expiry ticker on the
+ * system clock. Run its main, it throws on the first failure.
+ */
+public class ReservationCheck {
+
+  static final String ITEM = "0008534004804";
+  static final String STATE = "AL";
+  static final int INITIAL_STOCK = 3;
+  static final Order ORDER = new Order(1, LocalDateTime.of(2019, 3, 1, 0, 0), ITEM, STATE);
+  static final List<Item> ITEMS = Collections.singletonList(new Item(ITEM, 200, 20, 25, 4));
+  static final List<CarrierPricing> PRICINGS = Collections
+      .singletonList(new CarrierPricing(Warehouse.NEW_YORK, STATE, 0.4f));
+  static final List<DepartureTime> DEPARTURES = Collections.singletonList(new DepartureTime(Warehouse.NEW_YORK, STATE,
+      Collections.singletonList(new ShippingHour(DayOfWeek.MONDAY, LocalTime.of(8, 0)))));
+  static final List<CarrierTime> CARRIER_TIMES = Collections
+      .singletonList(new CarrierTime(Warehouse.NEW_YORK, STATE, 15));
+
+  static long start;
+  static long now;
+
+  public static void main(String[] args) {
+    confirmKeepsTheStockTaken();
+    releaseGivesTheStockBack();
+    expiryGivesTheStockBack();
+    reserveReclaimsExpiredHoldsBeforeRouting();
+    longHoldsDoNotExpireEarly();
+    catchingUpAfterAGapIsBounded();
+    tickerExpiresAndStopsOnClose();
+    tickerDoesNotKeepTheManagerAlive();
+    invalidTimesToLive();
+    System.out.println("Reservation checks passed");
+  }
+
+  static void confirmKeepsTheStockTaken() {
+    ShipmentsManager manager = newManager();
+    Reservation reservation = manager.reserve(ORDER, 1000);
+    check(available(manager) == INITIAL_STOCK - 1, "reserve takes a unit");
+    check(manager.confirm(reservation), "confirm a held reservation");
+    check(!reservation.isHeld() && manager.getHeldReservations() == 0, "confirmed reservation is not held");
+    check(!manager.confirm(reservation), "confirm twice");
+    check(!manager.release(reservation), "release after confirm");
+    tick(TimeUnit.SECONDS.toNanos(10));
+    manager.expireReservations();
+    check(available(manager) == INITIAL_STOCK - 1, "confirmed unit stays taken");
+  }
+
+  static void releaseGivesTheStockBack() {
+    ShipmentsManager manager = newManager();
+    Reservation reservation = manager.reserve(ORDER, 1000);
+    check(manager.release(reservation), "release a held reservation");
+    check(available(manager) == INITIAL_STOCK, "release gives the unit back");
+    check(!manager.release(reservation), "release twice");
+    check(!manager.confirm(reservation), "confirm after release");
+    check(available(manager) == INITIAL_STOCK, "second release gives nothing back");
+  }
+
+  static void expiryGivesTheStockBack() {
+    ShipmentsManager manager = newManager();
+    Reservation reservation = manager.reserve(ORDER, 1000);
+    tick(TimeUnit.MILLISECONDS.toNanos(999));
+    manager.expireReservations();
+    check(reservation.isHeld() && available(manager) == INITIAL_STOCK - 1, "not expired before its time to live");
+    tick(TimeUnit.MILLISECONDS.toNanos(1));
+    check(!manager.confirm(reservation), "confirm at the deadline");
+    check(available(manager) == INITIAL_STOCK, "expiry gives the unit back");
+    check(!manager.release(reservation), "release after expiry");
+    check(available(manager) == INITIAL_STOCK, "release after expiry gives nothing back");
+  }
+
+  static void reserveReclaimsExpiredHoldsBeforeRouting() {
+    ShipmentsManager manager = newManager();
+    List<Reservation> reservations = new ArrayList<>();
+    for (int i = 0; i < INITIAL_STOCK; i++) {
+      reservations.add(manager.reserve(ORDER, 500));
+    }
+    check(available(manager) == 0, "every unit held");
+    try {
+      manager.reserve(ORDER, 500);
+      check(false, "reserve without stock");
+    } catch (NoSuitableWarehouseException e) {
+      // Expected
+    }
+    // Expiry is at most one tick late
+    tick(TimeUnit.MILLISECONDS.toNanos(500) + ReservationWheel.TICK_NANOS);
+    Reservation reservation = manager.reserve(ORDER, 500);
+    check(reservation.isHeld() && manager.getHeldReservations() == 1, "expired holds freed the stock to reserve");
+    for (Reservation expired : reservations) {
+      check(!expired.isHeld(), "expired reservation is not held");
+    }
+    check(available(manager) == INITIAL_STOCK - 1, "only the new hold takes stock");
+  }
+
+  static void longHoldsDoNotExpireEarly() {
+    ShipmentsManager manager = newManager();
+    Reservation reservation = manager.reserve(ORDER, TimeUnit.MINUTES.toMillis(15));
+    long deadline = reservation.getDeadline();
+    // Walk it down every level of the wheel
+    while (now - start + ReservationWheel.TICK_NANOS < deadline) {
+      tick(ReservationWheel.TICK_NANOS);
+      manager.expireReservations();
+    }
+    check(reservation.isHeld(), "held until its deadline");
+    now = start + deadline + ReservationWheel.TICK_NANOS;
+    manager.expireReservations();
+    check(!reservation.isHeld() && available(manager) == INITIAL_STOCK, "expired within a tick of its deadline");
+  }
+
+  static void catchingUpAfterAGapIsBounded() {
+    ShipmentsManager manager = newManager();
+    Reservation minute = manager.reserve(ORDER, TimeUnit.MINUTES.toMillis(1));
+    Reservation month = manager.reserve(ORDER, TimeUnit.DAYS.toMillis(30));
+    Reservation forever = manager.reserve(ORDER, Long.MAX_VALUE);
+    // A century of 100 ms ticks, walking them one by one takes hours
+    tick(TimeUnit.DAYS.toNanos(100 * 365));
+    long started = System.nanoTime();
+    manager.expireReservations();
+    long took = System.nanoTime() - started;
+    check(took < TimeUnit.SECONDS.toNanos(1), "catching up a century took " + took / 1_000_000 + " ms");
+    check(!minute.isHeld() && !month.isHeld() && forever.isHeld(), "due holds expired after the gap");
+    check(available(manager) == INITIAL_STOCK - 1, "expired holds gave their units back");
+  }
+
+  static void invalidTimesToLive() {
+    ShipmentsManager manager = newManager();
+    try {
+      manager.reserve(ORDER, -1);
+      check(false, "negative time to live");
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+    check(available(manager) == INITIAL_STOCK, "rejected reservation takes nothing");
+
+    Reservation reservation = manager.reserve(ORDER, Long.MAX_VALUE);
+    check(reservation.getDeadline() == Long.MAX_VALUE, "deadline saturates");
+    tick(TimeUnit.DAYS.toNanos(365));
+    manager.expireReservations();
+    check(reservation.isHeld(), "saturated deadline does not expire");
+  }
+
+  // On the system clock from here on
+
+  static void tickerExpiresAndStopsOnClose() {
+    try (ShipmentsManager manager = newTickingManager()) {
+      Reservation reservation = manager.reserve(ORDER, 50);
+      check(tickerThreads() == 1, "first reservation starts the ticker");
+      check(waitFor(() -> !reservation.isHeld()), "the ticker expires holds on its own");
+      check(available(manager) == INITIAL_STOCK, "the ticker gives the unit back");
+    }
+    check(waitFor(() -> tickerThreads() == 0), "close stops the ticker");
+  }
+
+  static void tickerDoesNotKeepTheManagerAlive() {
+    WeakReference<ShipmentsManager> manager = reserveAndForget();
+    check(tickerThreads() == 1, "reservation starts the ticker");
+    check(waitFor(() -> {
+      System.gc();
+      return manager.get() == null;
+    }), "unclosed manager is collected");
+    check(waitFor(() -> tickerThreads() == 0), "ticker of a collected manager stops");
+  }
+
+  static WeakReference<ShipmentsManager> reserveAndForget() {
+    ShipmentsManager manager = newTickingManager();
+    manager.reserve(ORDER, TimeUnit.MINUTES.toMillis(15));
+    return new WeakReference<>(manager);
+  }
+
+  static long tickerThreads() {
+    return Thread.getAllStackTraces().keySet().stream().filter(thread -> thread.getName().equals("reservation-expiry"))
+        .count();
+  }
+
+  static boolean waitFor(BooleanSupplier condition) {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (!condition.getAsBoolean()) {
+      if (System.nanoTime() - deadline > 0)
+        return false;
+      try {
+        Thread.sleep(20);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+    return true;
+  }
+
+  static ShipmentsManager newManager() {
+    // nanoTime may wrap, have it wrap early in every check
+    start = now = Long.MAX_VALUE - TimeUnit.MILLISECONDS.toNanos(700);
+    return new ShipmentsManager(ITEMS, Collections.emptyList(), PRICINGS, DEPARTURES, CARRIER_TIMES, initialStocks(),
+        () -> now);
+  }
+
+  static ShipmentsManager newTickingManager() {
+    return new ShipmentsManager(ITEMS, Collections.emptyList(), PRICINGS, DEPARTURES, CARRIER_TIMES, initialStocks());
+  }
+
+  static List<Stock> initialStocks() {
+    return new ArrayList<>(Arrays.asList(new Stock(ITEM, Warehouse.NEW_YORK, INITIAL_STOCK)));
+  }
+
+  static int available(ShipmentsManager manager) {
+    return manager.getAvailableStock(ITEM, Warehouse.NEW_YORK);
+  }
+
+  static void tick(long nanos) {
+    now += nanos;
+  }
+
+  static void check(boolean condition, String what) {
+    if (!condition)
+      throw new AssertionError(what);
+  }
+}
@@ -0,0 +1,127 @@
+package com.betdbest;
+
+import java.time.DayOfWeek;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.betdbest.WarehouseTest.CarrierPricing;
+import com.betdbest.WarehouseTest.CarrierTime;
+import com.betdbest.WarehouseTest.DepartureTime;
+import com.betdbest.WarehouseTest.Item;
+import com.betdbest.WarehouseTest.Order;
+import com.betdbest.WarehouseTest.ShipmentInfo;
+import com.betdbest.WarehouseTest.ShipmentsManager;
+import com.betdbest.WarehouseTest.ShipmentsManager.NoSuitableWarehouseException;
+import com.betdbest.WarehouseTest.ShippingHour;
+import com.betdbest.WarehouseTest.Stock;
+import com.betdbest.WarehouseTest.Warehouse;
+
+/**
+ * Checks the warehouse selection of ShipmentsManager and the rollback of a failing batch. Run its main, it throws on
+ * the first failure.
+ */
+public class RoutingCheck {
+
+  static final float INF = Float.POSITIVE_INFINITY;
+  static final String ITEM = "0008534004804";
+  static final String STATE = "AL";
+  static final Order ORDER = new Order(1, LocalDateTime.of(2019, 3, 1, 0, 0), ITEM, STATE);
+
+  public static void main(String[] args) {
+    cheapestWarehouseWins();
+    tiesGoToTheHighestStock();
+    warehousesWithoutStockOrRouteAreSkipped();
+    noSuitableWarehouse();
+    failingBatchGivesTheStockBack();
+    System.out.println("Routing checks passed");
+  }
+
+  static void cheapestWarehouseWins() {
+    check(select(new float[] { 5f, 4f }, new int[] { 60, 179 }, new int[] { 1, 1 }) == 1, "cheaper shipping price");
+    // 40 hours of experience price outweigh the cheaper shipping price
+    check(select(new float[] { 5f, 4f }, new int[] { 0, 40 * 60 }, new int[] { 1, 1 }) == 0, "faster delivery");
+    // Only the candidates from the offset on are looked at
+    float[] prices = { 1f, 1f, 5f, 4f };
+    int[] minutes = { 0, 0, 60, 60 };
+    check(ShipmentsManager.selectBestWarehouse(prices, minutes, new int[] { 1, 1 }, 2) == 1, "candidates at offset");
+  }
+
+  static void tiesGoToTheHighestStock() {
+    check(select(new float[] { 5f, 5f }, new int[] { 60, 60 }, new int[] { 1, 3 }) == 1, "tie to the second");
+    check(select(new float[] { 5f, 5f }, new int[] { 60, 60 }, new int[] { 3, 1 }) == 0, "tie to the first");
+    // Same hours once truncated
+    check(select(new float[] { 5f, 5f }, new int[] { 60, 119 }, new int[] { 1, 2 }) == 1, "tie on whole hours");
+  }
+
+  static void warehousesWithoutStockOrRouteAreSkipped() {
+    check(select(new float[] { 1f, 5f }, new int[] { 0, 0 }, new int[] { 0, 2 }) == 1, "no stock");
+    check(select(new float[] { INF, 5f }, new int[] { 0, 0 }, new int[] { 5, 1 }) == 1, "no route");
+    check(select(new float[] { INF, 5f }, new int[] { 0, 0 }, new int[] { 5, 0 }) == -1, "neither");
+    check(select(new float[] { INF, INF }, new int[] { 0, 0 }, new int[] { 5, 5 }) == -1, "no routes at all");
+  }
+
+  static void noSuitableWarehouse() {
+    ShipmentsManager manager = newManager(1);
+    check(manager.findBestShipmentInfo(ORDER).getWarehouse() == Warehouse.NEW_YORK, "routed from New York");
+    expectNoSuitableWarehouse(manager, ORDER, "out of stock");
+    expectNoSuitableWarehouse(newManager(1), new Order(2, ORDER.getOrderDate(), ITEM, "HI"), "no route to state");
+    expectNoSuitableWarehouse(newManager(1), new Order(3, ORDER.getOrderDate(), "unknown", STATE), "unknown item");
+  }
+
+  static void failingBatchGivesTheStockBack() {
+    ShipmentsManager manager = newManager(2);
+    List<Order> orders = Arrays.asList(ORDER, ORDER, ORDER);
+    try {
+      manager.findBestShipmentInfos(orders);
+      check(false, "batch without enough stock");
+    } catch (NoSuitableWarehouseException e) {
+      // Expected
+    }
+    check(available(manager) == 2, "failing list batch takes nothing");
+
+    List<ShipmentInfo> handedOver = new ArrayList<>();
+    try {
+      manager.findBestShipmentInfos(orders, handedOver::add);
+      check(false, "consumer batch without enough stock");
+    } catch (NoSuitableWarehouseException e) {
+      // Expected
+    }
+    check(handedOver.size() == 2 && available(manager) == 0, "consumer batch keeps what it handed over");
+  }
+
+  static int select(float[] prices, int[] minutes, int[] stock) {
+    return ShipmentsManager.selectBestWarehouse(prices, minutes, stock, 0);
+  }
+
+  static void expectNoSuitableWarehouse(ShipmentsManager manager, Order order, String what) {
+    try {
+      manager.findBestShipmentInfo(order);
+      check(false, what);
+    } catch (NoSuitableWarehouseException e) {
+      // Expected
+    }
+  }
+
+  static ShipmentsManager newManager(int stock) {
+    List<ShippingHour> shippingHours = Collections.singletonList(new ShippingHour(DayOfWeek.MONDAY, LocalTime.of(8, 0)));
+    return new ShipmentsManager(Collections.singletonList(new Item(ITEM, 200, 20, 25, 4)), Collections.emptyList(),
+        Collections.singletonList(new CarrierPricing(Warehouse.NEW_YORK, STATE, 0.4f)),
+        Collections.singletonList(new DepartureTime(Warehouse.NEW_YORK, STATE, shippingHours)),
+        Collections.singletonList(new CarrierTime(Warehouse.NEW_YORK, STATE, 15)),
+        new ArrayList<>(Arrays.asList(new Stock(ITEM, Warehouse.NEW_YORK, stock),
+            new Stock(ITEM, Warehouse.SAN_FRANCISCO, 10))));
+  }
+
+  static int available(ShipmentsManager manager) {
+    return manager.getAvailableStock(ITEM, Warehouse.NEW_YORK);
+  }
+
+  static void check(boolean condition, String what) {
+    if (!condition)
+      throw new AssertionError(what);
+  }
+}
@@ -0,0 +1,75 @@
+package com.betdbest;
+
+import java.time.LocalDateTime;
+
+import com.betdbest.WarehouseTest.Order;
+import com.betdbest.WarehouseTest.ShipmentInfo;
+import com.betdbest.WarehouseTest.ShipmentStore;
+import com.betdbest.WarehouseTest.Warehouse;
+
+/**
+ * Checks that ShipmentStore gives back what it was given. Run its main, it throws on the first failure.
+ */
+public class ShipmentStoreCheck {
+
+  public static void main(String[] args) {
+    printsLikeShipmentInfo();
+    sortsByOrderDate();
+    rejectsWhatDoesNotFit();
+    System.out.println("Shipment store checks passed");
+  }
+
+  static void printsLikeShipmentInfo() {
+    ShipmentStore store = new ShipmentStore(1);
+    // Prices that land on either side of a thousandth
+    float[] prices = { 67.5f * 0.149f, 25.2f * 0.4f, 2.5f * 1.1f, 3_000_000f, 0f };
+    for (int i = 0; i < prices.length; i++) {
+      LocalDateTime orderDate = LocalDateTime.of(2019, 3, 1, 0, i);
+      ShipmentInfo info = new ShipmentInfo(new Order(i, orderDate, "item" + i, "AL"), Warehouse.SAN_FRANCISCO,
+          orderDate.plusMinutes(4321), "XL", prices[i]);
+      store.add(info);
+      check(store.get(i).toCsvLine().equals(info.toCsvLine()), "same CSV line for " + prices[i]);
+      check(store.getTotalPrice(i) == info.getTotalPrice(), "same total price for " + prices[i]);
+      check(store.get(i).getItemId().equals(info.getItemId()), "same item");
+    }
+  }
+
+  static void sortsByOrderDate() {
+    ShipmentStore store = new ShipmentStore(4);
+    long[] years = { 10000, 7000, 2019, 1970, 6053 };
+    for (int i = 0; i < years.length; i++) {
+      LocalDateTime orderDate = LocalDateTime.of((int) years[i], 1, 1, 0, 0);
+      store.add(new ShipmentInfo(new Order(i, orderDate, "item", "AL"), Warehouse.NEW_YORK, orderDate, "XS", 1f));
+    }
+    store.sortByOrderDate();
+    int[] expected = { 3, 2, 4, 1, 0 };
+    for (int i = 0; i < expected.length; i++) {
+      check(store.get(i).getOrder().getOrderId() == expected[i], "position " + i + " after sorting");
+      check(store.get(i).getOrder().getOrderDate().getYear() == years[expected[i]], "year kept at " + i);
+    }
+  }
+
+  static void rejectsWhatDoesNotFit() {
+    ShipmentStore store = new ShipmentStore(1);
+    LocalDateTime date = LocalDateTime.of(2019, 3, 1, 0, 0);
+    expectRejected(store, new ShipmentInfo(new Order(1, LocalDateTime.of(1969, 12, 31, 23, 59), "item", "AL"),
+        Warehouse.NEW_YORK, date, "XS", 1f), "date before 1970");
+    expectRejected(store, new ShipmentInfo(new Order(2, date, "item", "AL"), Warehouse.NEW_YORK,
+        LocalDateTime.of(10200, 1, 1, 0, 0), "XS", 1f), "date after 10136");
+    check(store.size() == 0, "nothing stored");
+  }
+
+  static void expectRejected(ShipmentStore store, ShipmentInfo info, String what) {
+    try {
+      store.add(info);
+      check(false, what);
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+  }
+
+  static void check(boolean condition, String what) {
+    if (!condition)
+      throw new AssertionError(what);
+  }
+}
@@ -5,10 +5,12 @@ import java.io.BufferedWriter;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.text.DecimalFormat;
 import java.time.DayOfWeek;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
+import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
 import java.time.temporal.TemporalAdjusters;
@@ -16,9 +18,16 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.LongSupplier;
 import java.util.stream.Collectors;
 
 
@@ -347,6 +356,302 @@ public class WarehouseTest {
     }
   }
 
+  /**
+   * A unit of stock held for an order until it is confirmed, released or it expires
+   */
+  static class Reservation {
+    final ShipmentInfo shipmentInfo;
+    final long deadline; // nanos since the manager's clock base
+
+    // Owned by ReservationWheel
+    volatile boolean held;
+    long deadlineTick;
+    int level, slot;
+    Reservation previous, next;
+
+    Reservation(ShipmentInfo shipmentInfo, long deadline) {
+      this.shipmentInfo = shipmentInfo;
+      this.deadline = deadline;
+    }
+
+    public ShipmentInfo getShipmentInfo() {
+      return shipmentInfo;
+    }
+
+    /**
+     * Nanoseconds from the creation of the ShipmentsManager that made it
+     */
+    public long getDeadline() {
+      return deadline;
+    }
+
+    public boolean isHeld() {
+      return held;
+    }
+  }
+
+  /**
+   * Compact storage for the shipments we keep until the output is written. Every shipment takes four longs instead of
+   * a ShipmentInfo, its Order and their dates; item ids, states and box types are kept once in flyweight tables.
+   * ShipmentInfo objects are only built back on {@link #get(int)}.
+   */
+  static class ShipmentStore {
+    private final List<String> itemIds = new ArrayList<>();
+    private final List<String> targetStates = new ArrayList<>();
+    private final List<String> boxTypes = new ArrayList<>();
+    private final Map<String, Integer> itemIndexes = new HashMap<>();
+    private final Map<String, Integer> targetStateIndexes = new HashMap<>();
+    private final Map<String, Integer> boxTypeIndexes = new HashMap<>();
+
+    private long[] orderIds;
+    private long[] dates; // order epoch minute << 32 | delivery epoch minute
+    private long[] routes; // price float bits << 32 | warehouse << 16 | box type
+    private long[] keys; // item << 32 | target state
+    private int size;
+
+    ShipmentStore(int capacity) {
+      orderIds = new long[capacity];
+      dates = new long[capacity];
+      routes = new long[capacity];
+      keys = new long[capacity];
+    }
+
+    /**
+     * Throws IllegalArgumentException if a field doesn't fit in its packed slot: dates before 1970 or after 10136, or
+     * more than 65536 box types
+     */
+    public void add(ShipmentInfo info) {
+      Order order = info.getOrder();
+      long date = toEpochMinute(order.getOrderDate()) << 32 | toEpochMinute(info.getGuaranteedDeliveryDate());
+      // Raw float bits, a rounded price would print differently
+      long route = (long) Float.floatToRawIntBits(info.getShippingPrice()) << 32
+          | checkIndex(info.getWarehouse().ordinal(), 0xFFFF, "warehouse") << 16
+          | indexOf(info.getBoxType(), boxTypes, boxTypeIndexes, 0xFFFF, "box type");
+      long key = (long) indexOf(order.getItemId(), itemIds, itemIndexes, Integer.MAX_VALUE, "item") << 32
+          | indexOf(order.getTargetState(), targetStates, targetStateIndexes, Integer.MAX_VALUE, "target state");
+
+      if (size == orderIds.length)
+        grow();
+      orderIds[size] = order.getOrderId();
+      dates[size] = date;
+      routes[size] = route;
+      keys[size] = key;
+      size++;
+    }
+
+    public int size() {
+      return size;
+    }
+
+    public ShipmentInfo get(int i) {
+      Order order = new Order(orderIds[i], fromEpochMinute(dates[i] >>> 32), itemIds.get((int) (keys[i] >>> 32)),
+          targetStates.get((int) keys[i]));
+      return new ShipmentInfo(order, ShipmentsManager.WAREHOUSES[(int) (routes[i] >>> 16) & 0xFFFF],
+          fromEpochMinute(dates[i] & 0xFFFFFFFFL), boxTypes.get((int) routes[i] & 0xFFFF), getShippingPrice(i));
+    }
+
+    public float getShippingPrice(int i) {
+      return Float.intBitsToFloat((int) (routes[i] >> 32));
+    }
+
+    /**
+     * Same as {@link ShipmentInfo#getTotalPrice()} without building the ShipmentInfo
+     */
+    public float getTotalPrice(int i) {
+      long hours = ((dates[i] & 0xFFFFFFFFL) - (dates[i] >>> 32)) / 60;
+      return getShippingPrice(i) + hours * EXPERIENCE_PRICE_BY_HOUR;
+    }
+
+    /**
+     * Stable sort by order date. Sorts primitive keys holding the order date and the current position, then moves
+     * every column to its new place.
+     */
+    public void sortByOrderDate() {
+      long[] order = new long[size];
+      for (int i = 0; i < size; i++) {
+        // Dates are unsigned, flip the sign bit so the signed sort keeps them in order
+        order[i] = ((dates[i] >>> 32) << 32 | i) ^ Long.MIN_VALUE;
+      }
+      Arrays.sort(order);
+
+      long[] sortedOrderIds = new long[orderIds.length];
+      long[] sortedDates = new long[dates.length];
+      long[] sortedRoutes = new long[routes.length];
+      long[] sortedKeys = new long[keys.length];
+      for (int i = 0; i < size; i++) {
+        int from = (int) order[i];
+        sortedOrderIds[i] = orderIds[from];
+        sortedDates[i] = dates[from];
+        sortedRoutes[i] = routes[from];
+        sortedKeys[i] = keys[from];
+      }
+      orderIds = sortedOrderIds;
+      dates = sortedDates;
+      routes = sortedRoutes;
+      keys = sortedKeys;
+    }
+
+    private void grow() {
+      int capacity = Math.max(16, orderIds.length * 2);
+      orderIds = Arrays.copyOf(orderIds, capacity);
+      dates = Arrays.copyOf(dates, capacity);
+      routes = Arrays.copyOf(routes, capacity);
+      keys = Arrays.copyOf(keys, capacity);
+    }
+
+    private static int indexOf(String value, List<String> values, Map<String, Integer> indexes, int maxIndex,
+        String name) {
+      return indexes.computeIfAbsent(value, v -> {
+        checkIndex(values.size(), maxIndex, name);
+        values.add(v);
+        return values.size() - 1;
+      });
+    }
+
+    private static int checkIndex(int index, int maxIndex, String name) {
+      if (index > maxIndex)
+        throw new IllegalArgumentException("Too many values of " + name + " for the shipment store: " + index);
+      return index;
+    }
+
+    // Stored unsigned in 32 bits
+    private static long toEpochMinute(LocalDateTime date) {
+      long epochMinute = Math.floorDiv(date.toEpochSecond(ZoneOffset.UTC), 60);
+      if (epochMinute < 0 || epochMinute > 0xFFFFFFFFL)
+        throw new IllegalArgumentException("Date " + date + " does not fit in the shipment store");
+      return epochMinute;
+    }
+
+    private static LocalDateTime fromEpochMinute(long epochMinute) {
+      return LocalDateTime.ofEpochSecond(epochMinute * 60, 0, ZoneOffset.UTC);
+    }
+  }
+
+  /**
+   * Hierarchical timer wheel for reservation expiry, four levels of 256 slots. Level 0 has one slot per tick and every
+   * level above covers 256 slots of the one below, so the wheel spans about 13 years of 100 ms ticks. Reservations are
+   * linked into the slot of their deadline and move down a level when their slot comes round, so scheduling and
+   * cancelling are O(1), a tick only walks the reservations due or moving down and idle ticks are skipped. Deadlines
+   * are rounded up to a tick, so a reservation expires on the first advance within one tick after its deadline. Not
+   * thread safe.
+   */
+  static class ReservationWheel {
+    static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    static final int SLOT_BITS = 8;
+    static final int SLOTS = 1 << SLOT_BITS;
+    static final int LEVELS = 4;
+    // Farther deadlines wait in the top level and are placed again when their slot comes round
+    static final long MAX_DELAY_TICKS = (1L << SLOT_BITS * LEVELS) - 1;
+
+    private final Reservation[][] slots = new Reservation[LEVELS][SLOTS];
+    private long currentTick; // next tick to run
+    private int size;
+
+    ReservationWheel(long now) {
+      this.currentTick = Math.floorDiv(now, TICK_NANOS);
+    }
+
+    public int size() {
+      return size;
+    }
+
+    public void schedule(Reservation reservation) {
+      // Round up so a reservation never expires before its time
+      long deadlineTick = Math.floorDiv(reservation.deadline, TICK_NANOS)
+          + (Math.floorMod(reservation.deadline, TICK_NANOS) == 0 ? 0 : 1);
+      reservation.deadlineTick = Math.max(currentTick, deadlineTick);
+      link(reservation);
+      reservation.held = true;
+      size++;
+    }
+
+    public void cancel(Reservation reservation) {
+      if (reservation.previous != null)
+        reservation.previous.next = reservation.next;
+      else
+        slots[reservation.level][reservation.slot] = reservation.next;
+      if (reservation.next != null)
+        reservation.next.previous = reservation.previous;
+      reservation.previous = null;
+      reservation.next = null;
+      reservation.held = false;
+      size--;
+    }
+
+    /**
+     * Cancels every reservation due at now and hands it to the consumer
+     */
+    public void advance(long now, Consumer<Reservation> expired) {
+      long targetTick = Math.floorDiv(now, TICK_NANOS);
+      while (currentTick <= targetTick) {
+        // Top down, a reservation may move down more than one level
+        for (int level = LEVELS - 1; level > 0; level--) {
+          if ((currentTick & (1L << SLOT_BITS * level) - 1) == 0)
+            moveDown(level, slotOf(currentTick, level));
+        }
+        // Everything left in a level 0 slot is due at this tick
+        int slot = slotOf(currentTick, 0);
+        Reservation reservation;
+        while ((reservation = slots[0][slot]) != null) {
+          cancel(reservation);
+          expired.accept(reservation);
+        }
+        // Jump over the ticks where nothing is due or moves down, so catching up after a gap costs the busy ticks
+        currentTick = Math.min(nextBusyTick(currentTick + 1), targetTick + 1);
+      }
+    }
+
+    /**
+     * First tick from the given one with reservations due or moving down. Looks at most at every slot once.
+     */
+    private long nextBusyTick(long from) {
+      if (size == 0)
+        return Long.MAX_VALUE;
+      long next = Long.MAX_VALUE;
+      for (int level = 0; level < LEVELS; level++) {
+        long step = 1L << SLOT_BITS * level;
+        // A level's slots only come round on multiples of its step
+        long tick = Math.floorDiv(from + step - 1, step) * step;
+        for (int i = 0; i < SLOTS && tick < next; i++, tick += step) {
+          if (slots[level][slotOf(tick, level)] != null) {
+            next = tick;
+            break;
+          }
+        }
+      }
+      return next;
+    }
+
+    private void moveDown(int level, int slot) {
+      Reservation reservation = slots[level][slot];
+      slots[level][slot] = null;
+      while (reservation != null) {
+        Reservation next = reservation.next;
+        link(reservation);
+        reservation = next;
+      }
+    }
+
+    private void link(Reservation reservation) {
+      long delay = Math.min(reservation.deadlineTick - currentTick, MAX_DELAY_TICKS);
+      int level = 0;
+      while (delay >= 1L << SLOT_BITS * (level + 1)) {
+        level++;
+      }
+      reservation.level = level;
+      reservation.slot = slotOf(currentTick + delay, level);
+      reservation.previous = null;
+      reservation.next = slots[level][reservation.slot];
+      if (reservation.next != null)
+        reservation.next.previous = reservation;
+      slots[level][reservation.slot] = reservation;
+    }
+
+    private static int slotOf(long tick, int level) {
+      return (int) (tick >> SLOT_BITS * level) & (SLOTS - 1);
+    }
+  }
+
   static class CsvParser {
 
     public static final Order parseOrder(String inputLine) {
@@ -402,7 +707,7 @@ public class WarehouseTest {
     }
   }
 
-  static class ShipmentsManager {
+  static class ShipmentsManager implements AutoCloseable {
 
     final Integer PACKAGE_PREPARATION_HOURS = 4;
 
@@ -423,97 +728,208 @@ public class WarehouseTest {
       }
     }
     
+    static final Warehouse[] WAREHOUSES = Warehouse.values();
+
+    // Shared rows for states or items we know nothing about, never written to
+    static final AtomicIntegerArray NO_STOCK = new AtomicIntegerArray(WAREHOUSES.length);
+    static final float[] NO_PRICES = noRoutePrices();
+    static final CarrierTime[] NO_CARRIER_TIMES = new CarrierTime[WAREHOUSES.length];
+    static final ShippingHour[][] NO_SHIPPING_HOURS = noShippingHours();
+
     private List<Item> items;
     private List<BoxType> boxTypes;
-    private List<Stock> stocks;
-    private List<CarrierPricing> pricings;
-    private List<CarrierTime> times;
-    private List<DepartureTime> departures;
+
+    // Routing tables by target state and stock by item, every row indexed by Warehouse.ordinal()
+    private final Map<String, float[]> volumePricesByState = new HashMap<>();
+    private final Map<String, CarrierTime[]> carrierTimesByState = new HashMap<>();
+    private final Map<String, ShippingHour[][]> shippingHoursByState = new HashMap<>();
+    // Available stock, held units are already taken out. Read without locking while routing
+    private final Map<String, AtomicIntegerArray> stocksByItem = new HashMap<>();
+
+    // Reservation deadlines are in nanoTime so wall clock changes don't move them. nanoTime may wrap, so only the
+    // time elapsed since clockBase is used
+    private final LongSupplier clock;
+    private final long clockBase;
+    // Guarded by itself, as is the ticker
+    private final ReservationWheel reservations;
+    private final boolean expiryTickerEnabled;
+    private ScheduledExecutorService expiryTicker;
+    private boolean closed;
 
     public ShipmentsManager(List<Item> items, List<BoxType> boxTypes, List<CarrierPricing> carrierPricings,
         List<DepartureTime> departureTimes, List<CarrierTime> carrierTimes, List<Stock> initialStocks) {
+      this(items, boxTypes, carrierPricings, departureTimes, carrierTimes, initialStocks, System::nanoTime, true);
+    }
+
+    /**
+     * Reservations follow the given nanosecond clock and only expire when reserve, confirm, release or
+     * expireReservations are called, there is no expiry ticker
+     */
+    ShipmentsManager(List<Item> items, List<BoxType> boxTypes, List<CarrierPricing> carrierPricings,
+        List<DepartureTime> departureTimes, List<CarrierTime> carrierTimes, List<Stock> initialStocks,
+        LongSupplier clock) {
+      this(items, boxTypes, carrierPricings, departureTimes, carrierTimes, initialStocks, clock, false);
+    }
+
+    private ShipmentsManager(List<Item> items, List<BoxType> boxTypes, List<CarrierPricing> carrierPricings,
+        List<DepartureTime> departureTimes, List<CarrierTime> carrierTimes, List<Stock> initialStocks,
+        LongSupplier clock, boolean expiryTickerEnabled) {
+      this.clock = clock;
+      this.clockBase = clock.getAsLong();
+      this.reservations = new ReservationWheel(0);
+      this.expiryTickerEnabled = expiryTickerEnabled;
       this.items = items;
       this.boxTypes = boxTypes;
-      this.pricings = carrierPricings;
-      this.departures = departureTimes;
-      this.times = carrierTimes;
-      this.stocks = initialStocks;
+      for (CarrierPricing pricing : carrierPricings) {
+        volumePricesByState.computeIfAbsent(pricing.getTargetState(), state -> noRoutePrices())[pricing.getWarehouse()
+            .ordinal()] = pricing.getVolumePrice();
+      }
+      for (DepartureTime departure : departureTimes) {
+        shippingHoursByState.computeIfAbsent(departure.getTargetState(), state -> noShippingHours())[departure
+            .getWarehouse().ordinal()] = departure.getShippingHours().toArray(new ShippingHour[0]);
+      }
+      for (CarrierTime time : carrierTimes) {
+        carrierTimesByState.computeIfAbsent(time.getTargetState(),
+            state -> new CarrierTime[WAREHOUSES.length])[time.getWarehouse().ordinal()] = time;
+      }
+      for (Stock stock : initialStocks) {
+        stocksByItem.computeIfAbsent(stock.getItemId(), itemId -> new AtomicIntegerArray(WAREHOUSES.length))
+            .set(stock.getWarehouse().ordinal(), stock.getStock());
+      }
     }
-    
+
     public ShipmentInfo findBestShipmentInfo(Order order) throws NoSuitableWarehouseException, NoSuitableBoxException {
-      ArrayList<Warehouse> availableWarehouses = new ArrayList<>();
+      return findBestShipmentInfos(Collections.singletonList(order)).get(0);
+    }
 
-      // First of all we check if we have stock in all of our warehouses for the given
-      // order
-      for (Stock stock : this.stocks) {
-        if ((stock.getItemId().equals(order.getItemId())) && (stock.getStock() > 0)) {
-          availableWarehouses.add(stock.getWarehouse());
+    /**
+     * Routes a batch of orders in the given order. The price and delivery time of every warehouse do not depend on
+     * stock, so they are computed for the whole batch first and the stock is only looked at when picking the winner.
+     * All or nothing: if an order can't be routed the stock taken for the previous ones is given back before the
+     * exception is thrown. Use {@link #findBestShipmentInfos(List, Consumer)} to keep the orders routed until then.
+     */
+    public List<ShipmentInfo> findBestShipmentInfos(List<Order> orders)
+        throws NoSuitableWarehouseException, NoSuitableBoxException {
+      List<ShipmentInfo> infos = new ArrayList<>(orders.size());
+      try {
+        findBestShipmentInfos(orders, infos::add);
+      } catch (RuntimeException e) {
+        for (ShipmentInfo info : infos) {
+          increaseStock(info);
         }
-        // Avoid extra iterations...
-        if (availableWarehouses.size() == Warehouse.values().length)
-          break;
+        throw e;
+      }
+      return infos;
+    }
+
+    /**
+     * Same as {@link #findBestShipmentInfos(List)} but hands every ShipmentInfo to the consumer instead of keeping
+     * them in a list. Orders handed over before a failing one keep their stock.
+     */
+    public void findBestShipmentInfos(List<Order> orders, Consumer<ShipmentInfo> consumer)
+        throws NoSuitableWarehouseException, NoSuitableBoxException {
+      int size = orders.size();
+      int stride = WAREHOUSES.length;
+      BoxType[] boxes = new BoxType[size];
+      float[] prices = new float[size * stride];
+      int[] minutes = new int[size * stride];
+
+      for (int i = 0; i < size; i++) {
+        Order order = orders.get(i);
+        boxes[i] = findBestBoxType(order);
+        fillRouteCandidates(order, boxes[i], prices, minutes, i * stride);
       }
 
-      if (availableWarehouses.size() == 0) {
-        throw new NoSuitableWarehouseException(order.getItemId(), order.getTargetState());
+      int[] available = new int[stride];
+      for (int i = 0; i < size; i++) {
+        consumer.accept(findBestRoute(orders.get(i), boxes[i], prices, minutes, i * stride, available));
       }
+    }
 
-      BoxType boxType = findBestBoxType(order);
-      ShipmentInfo info = findBestRoute(availableWarehouses, order, boxType);
+    /**
+     * Writes the shipping price and the minutes until delivery of every warehouse for the given order, starting at
+     * offset. Warehouses without pricing or departures for the target state get an infinite price.
+     */
+    private void fillRouteCandidates(Order order, BoxType box, float[] prices, int[] minutes, int offset) {
+      String state = order.getTargetState();
+      float[] volumePrices = volumePricesByState.getOrDefault(state, NO_PRICES);
+      CarrierTime[] times = carrierTimesByState.getOrDefault(state, NO_CARRIER_TIMES);
+      ShippingHour[][] shippingHours = shippingHoursByState.getOrDefault(state, NO_SHIPPING_HOURS);
+
+      for (int w = 0; w < WAREHOUSES.length; w++) {
+        int earliest = Integer.MAX_VALUE;
+        if (times[w] != null) {
+          for (ShippingHour shippingHour : shippingHours[w]) {
+            LocalDateTime delivery = getDeliveryDateTime(order.getOrderDate(), shippingHour, times[w]);
+            earliest = Math.min(earliest, (int) order.getOrderDate().until(delivery, ChronoUnit.MINUTES));
+          }
+        }
+        boolean routable = earliest != Integer.MAX_VALUE;
+        prices[offset + w] = routable ? box.getVolume() * volumePrices[w] : Float.POSITIVE_INFINITY;
+        minutes[offset + w] = routable ? earliest : 0;
+      }
+    }
 
-      if (info == null)
-        throw new NoSuitableWarehouseException(order.getItemId(), order.getTargetState());
+    /**
+     * Takes a unit from the best warehouse for the order. available is scratch space for the stock snapshot, shared
+     * by the whole batch.
+     */
+    private ShipmentInfo findBestRoute(Order order, BoxType box, float[] prices, int[] minutes, int offset,
+        int[] available) throws NoSuitableWarehouseException {
+      AtomicIntegerArray stock = stocksByItem.getOrDefault(order.getItemId(), NO_STOCK);
+      int best;
+
+      // Somebody else may take the last unit between the read and the decrease, pick again then
+      do {
+        for (int w = 0; w < available.length; w++) {
+          available[w] = stock.get(w);
+        }
+        best = selectBestWarehouse(prices, minutes, available, offset);
 
-      decreaseStock(info.getWarehouse(), order);
+        if (best < 0)
+          throw new NoSuitableWarehouseException(order.getItemId(), order.getTargetState());
+      } while (!decreaseStock(WAREHOUSES[best], order));
 
-      return info;
+      return new ShipmentInfo(order, WAREHOUSES[best], order.getOrderDate().plusMinutes(minutes[offset + best]),
+          box.getBoxType(), prices[offset + best]);
     }
-    
-    private ShipmentInfo findBestRoute(List<Warehouse> warehouses, Order order, BoxType box)
-        throws NoSuitableWarehouseException {
-    	
-    	//Tendria que buscar la condicion en la que sean iguales la hora de salida del almacen y la hora de recogida de los transportistas y con ello obtener el warehouse que necesito,
-    	//una vez obtenido el warehouse correcto, recorreria la Lista de warehouses con un bucle for hasta encontrar en la lista el warehouse que estamos buscando, seleccionando este 
-    	//warehouse como el bestwarehouse. (No he podido encontrar la relaccin entre la hora de salida del almacen y la hora de recogida de los transportistas, por lo que dejare como
-    	//bestwarehouse el primero de la lista.
-    	Warehouse bestwarehouse = warehouses.get(0);
-    	
-    	//Para calcular la hora utilizamos el metodo getDeliveryDateTime, para ello necesitamos los atributos necesarios para el metodo getDeliveryDateTime que son un LocalDateTime orderDate,
-    	//ShippingHour shippingHour, CarrierTime time
-    	
-    	LocalDateTime besttime = order.getOrderDate();
-    	for (DepartureTime departure : this.departures) {
-    		for (CarrierTime carrier : this.times) {
-    			
-    			List<ShippingHour> listashiping = departure.getShippingHours();
-    			
-    			for (ShippingHour i : listashiping) {
-    				ShippingHour shippinghour = i;
-    				CarrierTime carriertime = new CarrierTime(warehouses.get(0),order.getTargetState(),carrier.getCarrierTime());
-    				besttime = getDeliveryDateTime(order.getOrderDate(),shippinghour,carriertime);
-    			}
-    			
-    		}
-    		
-    	}
-
-    	float preciototal = 0.0f;
-    	//Hacemos el calculo del precio segun el volumen, ya que el precio de experiencia se suma y se tiene en cuenta
-    	//una vez ya se ejecuta el metodo getTotalPrice() de ShipmentInfo
-    	for (CarrierPricing carrierpricing : this.pricings) {
-    		if ((carrierpricing.getTargetState().equals(order.getTargetState()))) {
-    				preciototal = carrierpricing.getVolumePrice();
-    	        }
-    	}
-    	
-    	Order bestorder = order;
-    	String bestbox = box.getBoxType();
-    	
-    	//Creamos el objeto ShipmentInfo con todos los atributos ya cargados y lo devolvemos
-    	ShipmentInfo bestshipmentinfo = new ShipmentInfo(bestorder, bestwarehouse, besttime, bestbox, preciototal);
-    	return bestshipmentinfo;
+
+    /**
+     * Returns the ordinal of the cheapest warehouse with stock, shipping price plus experience price, or -1 if there
+     * is none. Ties go to the warehouse with more stock. The loop has no data dependent branches so it stays flat as
+     * warehouses are added.
+     */
+    static int selectBestWarehouse(float[] prices, int[] minutes, int[] stock, int offset) {
+      float experiencePriceByHour = EXPERIENCE_PRICE_BY_HOUR;
+      int best = -1;
+      float bestCost = Float.POSITIVE_INFINITY;
+      int bestStock = 0;
+
+      for (int w = 0; w < stock.length; w++) {
+        // Same rounding as ShipmentInfo.getTotalPrice(), hours are truncated
+        float cost = prices[offset + w] + (minutes[offset + w] / 60) * experiencePriceByHour;
+        int units = stock[w];
+        boolean better = (units > 0) & (cost != Float.POSITIVE_INFINITY)
+            & ((cost < bestCost) | ((cost == bestCost) & (units > bestStock)));
+        best = better ? w : best;
+        bestCost = better ? cost : bestCost;
+        bestStock = better ? units : bestStock;
+      }
+      return best;
     }
-    
+
+    private static float[] noRoutePrices() {
+      float[] prices = new float[WAREHOUSES.length];
+      Arrays.fill(prices, Float.POSITIVE_INFINITY);
+      return prices;
+    }
+
+    private static ShippingHour[][] noShippingHours() {
+      ShippingHour[][] shippingHours = new ShippingHour[WAREHOUSES.length][];
+      Arrays.fill(shippingHours, new ShippingHour[0]);
+      return shippingHours;
+    }
+
     private BoxType findBestBoxType(Order order) throws NoSuitableBoxException {
     	//El item por defecto lo metemos en una caja grande para evitar que no quepa
     	int tipocaja = 5;
@@ -591,20 +1007,172 @@ public class WarehouseTest {
     }
     
     /**
-     * Overwrites our stock of the Order's item with a unit less
+     * Routes the order like {@link #findBestShipmentInfo(Order)} but only holds the unit for ttlMillis. Unless it is
+     * confirmed before then, the unit goes back to the stock, at most one wheel tick (100 ms) later. The first
+     * reservation starts a ticker thread that expires holds every tick, see {@link #close()}.
+     */
+    public Reservation reserve(Order order, long ttlMillis) throws NoSuitableWarehouseException, NoSuitableBoxException {
+      if (ttlMillis < 0)
+        throw new IllegalArgumentException("Negative reservation time to live: " + ttlMillis);
+
+      long now = elapsedNanos();
+      // Expired holds give their stock back before we route
+      synchronized (reservations) {
+        reservations.advance(now, this::expire);
+        startExpiryTicker();
+      }
+
+      ShipmentInfo info = findBestShipmentInfo(order);
+      Reservation reservation = new Reservation(info, saturatedAdd(now, TimeUnit.MILLISECONDS.toNanos(ttlMillis)));
+      synchronized (reservations) {
+        reservations.schedule(reservation);
+      }
+      return reservation;
+    }
+
+    /**
+     * Turns the held unit into a shipment. Returns false if the reservation was already released or expired.
+     */
+    public boolean confirm(Reservation reservation) {
+      synchronized (reservations) {
+        if (!isStillHeld(reservation))
+          return false;
+        reservations.cancel(reservation);
+        return true;
+      }
+    }
+
+    /**
+     * Gives the held unit back to the stock. Returns false if the reservation was already confirmed or expired.
+     */
+    public boolean release(Reservation reservation) {
+      synchronized (reservations) {
+        if (!isStillHeld(reservation))
+          return false;
+        reservations.cancel(reservation);
+        increaseStock(reservation.getShipmentInfo());
+        return true;
+      }
+    }
+
+    /**
+     * Gives back the stock of every expired reservation. The expiry ticker calls it every tick.
+     */
+    public void expireReservations() {
+      synchronized (reservations) {
+        reservations.advance(elapsedNanos(), this::expire);
+      }
+    }
+
+    /**
+     * Stops the expiry ticker for good. Held reservations then only expire on reserve, confirm, release or
+     * expireReservations. The ticker also stops on its own once an unclosed manager is garbage collected.
      */
-    private void decreaseStock(Warehouse warehouse, Order order) {
-      for (Stock stock : this.stocks) {
-        if (stock.getWarehouse() != warehouse)
-          continue;
-        if (stock.getItemId().equals(order.getItemId())) {
-          int s = stock.getStock();
-          --s;
-          this.stocks.set(this.stocks.indexOf(stock), new Stock(stock.getItemId(), warehouse, s));
-          break;
+    @Override
+    public void close() {
+      synchronized (reservations) {
+        closed = true;
+        if (expiryTicker != null)
+          expiryTicker.shutdownNow();
+      }
+    }
+
+    int getAvailableStock(String itemId, Warehouse warehouse) {
+      return stocksByItem.getOrDefault(itemId, NO_STOCK).get(warehouse.ordinal());
+    }
+
+    public int getHeldReservations() {
+      synchronized (reservations) {
+        return reservations.size();
+      }
+    }
+
+    private void startExpiryTicker() {
+      if (!expiryTickerEnabled || closed || expiryTicker != null)
+        return;
+      expiryTicker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "reservation-expiry");
+        thread.setDaemon(true);
+        return thread;
+      });
+      expiryTicker.scheduleAtFixedRate(new ExpiryTick(this, expiryTicker), ReservationWheel.TICK_NANOS,
+          ReservationWheel.TICK_NANOS, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Task of the expiry ticker. It only holds the manager weakly so the ticker doesn't keep an unclosed manager
+     * alive, and shuts the ticker down once the manager is gone. A failing tick is reported to the thread's uncaught
+     * exception handler and the next tick runs anyway, scheduleAtFixedRate would silently stop otherwise.
+     */
+    static class ExpiryTick implements Runnable {
+      private final WeakReference<ShipmentsManager> manager;
+      private final ScheduledExecutorService ticker;
+
+      ExpiryTick(ShipmentsManager manager, ScheduledExecutorService ticker) {
+        this.manager = new WeakReference<>(manager);
+        this.ticker = ticker;
+      }
+
+      @Override
+      public void run() {
+        ShipmentsManager shipmentsManager = manager.get();
+        if (shipmentsManager == null) {
+          ticker.shutdown();
+          return;
+        }
+        try {
+          shipmentsManager.expireReservations();
+        } catch (RuntimeException e) {
+          Thread thread = Thread.currentThread();
+          thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
         }
       }
     }
+
+    private boolean isStillHeld(Reservation reservation) {
+      long now = elapsedNanos();
+      reservations.advance(now, this::expire);
+      // The wheel works in ticks, it may not have reached this one yet
+      if (reservation.isHeld() && now >= reservation.getDeadline()) {
+        reservations.cancel(reservation);
+        expire(reservation);
+      }
+      return reservation.isHeld();
+    }
+
+    /**
+     * Takes a unit of the Order's item out of our stock in the given warehouse. Returns false if there is none left.
+     */
+    private boolean decreaseStock(Warehouse warehouse, Order order) {
+      AtomicIntegerArray stock = stocksByItem.get(order.getItemId());
+      int w = warehouse.ordinal();
+      for (int units = stock.get(w); units > 0; units = stock.get(w)) {
+        if (stock.compareAndSet(w, units, units - 1))
+          return true;
+      }
+      return false;
+    }
+
+    /**
+     * Gives the unit of a shipment back to the stock of its warehouse
+     */
+    private void increaseStock(ShipmentInfo info) {
+      stocksByItem.get(info.getItemId()).incrementAndGet(info.getWarehouse().ordinal());
+    }
+
+    private void expire(Reservation reservation) {
+      increaseStock(reservation.getShipmentInfo());
+    }
+
+    private long elapsedNanos() {
+      return clock.getAsLong() - clockBase;
+    }
+
+    // Only for b >= 0
+    private static long saturatedAdd(long a, long b) {
+      long sum = a + b;
+      return sum < a ? Long.MAX_VALUE : sum;
+    }
   }
 
   public static void main(String[] args) throws IOException {
@@ -671,28 +1239,22 @@ public class WarehouseTest {
       }
     });
 
-    ShipmentsManager shipmentsManager = new ShipmentsManager(items, boxTypes, carrierPricings, departureTimes,
-        carrierTimes, stocks);
-
-    List<ShipmentInfo> shipmentInfos = orders.stream().map(shipmentsManager::findBestShipmentInfo)
-        .collect(Collectors.toList());
-
-    Collections.sort(shipmentInfos, new Comparator<ShipmentInfo>() {
-      @Override
-      public int compare(ShipmentInfo arg0, ShipmentInfo arg1) {
-        return arg0.getOrder().getOrderDate().compareTo(arg1.getOrder().getOrderDate());
-      }
-    });
+    ShipmentStore shipments = new ShipmentStore(orders.size());
+    try (ShipmentsManager shipmentsManager = new ShipmentsManager(items, boxTypes, carrierPricings, departureTimes,
+        carrierTimes, stocks)) {
+      shipmentsManager.findBestShipmentInfos(orders, shipments::add);
+    }
+    shipments.sortByOrderDate();
 
     Float totalShipmentPrice = 0.0f;
 
-    for (ShipmentInfo shipmentInfo : shipmentInfos) {
-      totalShipmentPrice += shipmentInfo.shippingPrice + shipmentInfo.getShippingExperiencePrice();
+    for (int i = 0; i < shipments.size(); i++) {
+      totalShipmentPrice += shipments.getTotalPrice(i);
     }
     StringBuilder output = new StringBuilder();
     output.append(totalShipmentPrice + "\n");
-    for (ShipmentInfo shipmentInfo : shipmentInfos) {
-      output.append(shipmentInfo.toCsvLine() + "\n");
+    for (int i = 0; i < shipments.size(); i++) {
+      output.append(shipments.get(i).toCsvLine() + "\n");
     }
     bw.write(output.toString());
     bw.close();